@@ -0,0 +1,206 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many requests can be in flight to a single host at once.
+ * 
+ * The limit grows by about one for every round of successful requests and is halved
+ * when the server throttles us or responses start to come back a lot slower than the
+ * fastest we've seen (AIMD, like TCP congestion control).
+ * @author niya
+ *
+ */
+public class AdaptiveLimiter {
+    private static final String LOG_TAG = AdaptiveLimiter.class.getSimpleName();
+
+    /*
+     * Bounds for the limit.  The upper bound is also the number of connections we'll
+     * keep open to a host, so it shouldn't be too greedy.
+     */
+    public static final int MIN_LIMIT = 1;
+    public static final int MAX_LIMIT = 6;
+    private static final double INITIAL_LIMIT = 2;
+
+    /*
+     * A request counts as "slow" if it took more than this many times the fastest
+     * request we've seen (plus a little slack, so very fast hosts don't flap)
+     */
+    private static final long LATENCY_FACTOR = 3;
+    private static final long LATENCY_SLACK_MS = 200;
+
+    /*
+     * The fastest request is forgotten after this many successes (and whenever the limit
+     * is cut), so one quick response on a fast network doesn't make everything on a
+     * slower one look slow forever
+     */
+    private static final int LATENCY_WINDOW = 100;
+
+    // How often (in completed requests) to log how a host is doing
+    private static final int LOG_INTERVAL = 50;
+
+    // One limiter per host
+    private static final Map<String, AdaptiveLimiter> sLimiters = new HashMap<String, AdaptiveLimiter>();
+
+    private final String mHost;
+
+    private double mLimit = INITIAL_LIMIT;
+    private int mInFlight;
+
+    // Fastest response seen recently, used as the baseline for "slow"
+    private long mMinLatency = Long.MAX_VALUE;
+    private int mLatencySamples;
+
+    // When the limit was last cut, so one bad window only cuts it once
+    private long mLastDecrease;
+
+    // No requests to the host until this time, because it sent a Retry-After
+    private long mBlockedUntil;
+
+    // Counters for measuring throughput and error rates
+    private final long mCreated = SystemClock.elapsedRealtime();
+    private int mSucceeded;
+    private int mThrottled;
+    private int mFailed;
+    private int mTimedOut;
+
+    private AdaptiveLimiter(final String host) {
+        mHost = host;
+    }
+
+    /**
+     * Gets the limiter for a host, creating it if needed
+     * @param host Host name
+     * @return The limiter shared by all requests to that host
+     */
+    public static AdaptiveLimiter forHost(final String host) {
+        synchronized (sLimiters) {
+            AdaptiveLimiter limiter = sLimiters.get(host);
+            if (limiter == null) {
+                limiter = new AdaptiveLimiter(host);
+                sLimiters.put(host, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Waits until another request to the host is allowed
+     * @return The time the request started, to pass back when it completes
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public synchronized long acquire() throws InterruptedException {
+        while (true) {
+            final long blocked = mBlockedUntil - SystemClock.elapsedRealtime();
+            if (blocked > 0) {
+                // The host asked everyone to hold off for a while
+                wait(blocked);
+            } else if (mInFlight >= (int) mLimit) {
+                wait();
+            } else {
+                break;
+            }
+        }
+        ++mInFlight;
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Reports that a request completed successfully
+     * @param started Value returned from {@link #acquire()}
+     * @param responded When the response headers arrived, so the time spent reading the
+     *            body (which depends on its size and the network) isn't counted
+     */
+    public synchronized void onSuccess(final long started, final long responded) {
+        final long now = SystemClock.elapsedRealtime();
+        final long latency = responded - started;
+        ++mSucceeded;
+
+        // Start a new window for the baseline every so often
+        if (++mLatencySamples > LATENCY_WINDOW) {
+            resetMinLatency();
+            mLatencySamples = 1;
+        }
+        mMinLatency = Math.min(mMinLatency, latency);
+
+        if (latency > (mMinLatency * LATENCY_FACTOR) + LATENCY_SLACK_MS) {
+            decrease(started, now);
+        } else {
+            // Additive increase: about +1 once a full window of requests has succeeded
+            mLimit = Math.min(MAX_LIMIT, mLimit + (1.0 / mLimit));
+        }
+        release();
+    }
+
+    /**
+     * Reports that the server throttled a request (429 or 503)
+     * @param started Value returned from {@link #acquire()}
+     * @param retryAfter How long the server asked us to wait, in ms (or -1 if it didn't say).
+     *            No requests to the host are allowed until then.
+     */
+    public synchronized void onThrottled(final long started, final long retryAfter) {
+        final long now = SystemClock.elapsedRealtime();
+        ++mThrottled;
+        decrease(started, now);
+        if (retryAfter > 0) {
+            mBlockedUntil = Math.max(mBlockedUntil, now + retryAfter);
+        }
+        release();
+    }
+
+    /**
+     * Reports that a request failed for some other reason
+     * @param started Value returned from {@link #acquire()}
+     */
+    public synchronized void onFailed(final long started) {
+        ++mFailed;
+        release();
+    }
+
+    /**
+     * Reports that a request timed out, which is treated as a sign the host is overloaded
+     * @param started Value returned from {@link #acquire()}
+     */
+    public synchronized void onTimedOut(final long started) {
+        ++mTimedOut;
+        decrease(started, SystemClock.elapsedRealtime());
+        release();
+    }
+
+    private void resetMinLatency() {
+        mMinLatency = Long.MAX_VALUE;
+        mLatencySamples = 0;
+    }
+
+    private void decrease(final long started, final long now) {
+        // Requests that started before the last cut were sent at the old limit, so
+        // they've already been accounted for
+        if (started < mLastDecrease) {
+            return;
+        }
+        mLimit = Math.max(MIN_LIMIT, mLimit / 2);
+        mLastDecrease = now;
+
+        // Conditions have changed, so find out what "fast" is all over again
+        resetMinLatency();
+    }
+
+    private void release() {
+        --mInFlight;
+        notifyAll();
+
+        final int completed = mSucceeded + mThrottled + mFailed + mTimedOut;
+        if (completed % LOG_INTERVAL == 0) {
+            final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mCreated);
+            Log.d(LOG_TAG, String.format(
+                    "%s: limit %.1f, %d requests, %.2f ok/s, %d%% throttled, %d%% timed out, %d%% failed",
+                    mHost, mLimit, completed, (mSucceeded * 1000.0) / elapsed,
+                    (mThrottled * 100) / completed, (mTimedOut * 100) / completed,
+                    (mFailed * 100) / completed));
+        }
+    }
+}
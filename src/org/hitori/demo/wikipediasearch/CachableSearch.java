@@ -19,8 +19,12 @@ public class CachableSearch implements SearchResultsListener {
     // Pending search term - only one pending term is supported
     private String mPendingSearch;
     private SearchResultsListener mPendingListener;
+
+    // Size of the thumbnails to request with the results
+    private final int mThumbnailSize;
     
-    public CachableSearch() {
+    public CachableSearch(final int thumbnailSize) {
+        mThumbnailSize = thumbnailSize;
         mCachedResults = new HashMap<String, SoftReference<List<WikiPage>>>();
     }
     
@@ -61,7 +65,7 @@ public class CachableSearch implements SearchResultsListener {
                     // All set - perform the search
                     mActiveSearch = true;
                     mSearchResultsListener = listener;
-                    new SearchTask(this, term).execute((Void[])null);
+                    new SearchTask(this, term, mThumbnailSize).execute((Void[])null);
                 }
             }
         }
@@ -0,0 +1,184 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Collects updates to the UI and applies them once per display frame, rather than
+ * each one as soon as it comes in (and possibly triggering its own layout pass).
+ * 
+ * Each frame only gets a limited amount of time; anything left over waits for the
+ * next frame.  Only use this from the UI thread.
+ * @author niya
+ *
+ */
+public class FrameUpdateQueue {
+    private static final String LOG_TAG = FrameUpdateQueue.class.getSimpleName();
+
+    // Time per frame for applying updates, leaving the rest for layout and drawing
+    private static final long FRAME_BUDGET_NANOS = 6 * 1000 * 1000;
+
+    private final ArrayDeque<Runnable> mPending = new ArrayDeque<Runnable>();
+
+    // Expected time between frames
+    private final long mFrameIntervalNanos;
+
+    // How frames get scheduled: Choreographer if we have it, a Handler if not
+    private final ChoreographerFrames mChoreographerFrames;
+    private final Handler mHandler;
+    private final Runnable mHandlerFrame = new Runnable() {
+        @Override
+        public void run() {
+            doFrame(System.nanoTime());
+        }
+    };
+
+    private boolean mFrameScheduled;
+
+    // Set once the queue has been cancelled, after which nothing else is applied
+    private boolean mCancelled;
+
+    // Time of the last frame that applied updates (0 if the queue has been idle since)
+    private long mLastFrameNanos;
+
+    // Stats for the current burst of updates, and overall
+    private int mBurstUpdates;
+    private int mBurstFrames;
+    private int mBurstDroppedFrames;
+    private int mDroppedFrames;
+
+    /**
+     * @param refreshRate Refresh rate of the display, in frames per second
+     */
+    public FrameUpdateQueue(final float refreshRate) {
+        mFrameIntervalNanos = (long) (1000000000L / ((refreshRate > 0) ? refreshRate : 60));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mChoreographerFrames = new ChoreographerFrames(this);
+            mHandler = null;
+        } else {
+            mChoreographerFrames = null;
+            mHandler = new Handler();
+        }
+    }
+
+    /**
+     * Queues an update to be applied on an upcoming frame.  Updates are applied in the
+     * order they're posted.  Ignored once the queue has been cancelled.
+     * @param update The update
+     */
+    public void post(final Runnable update) {
+        if (mCancelled) {
+            return;
+        }
+        mPending.add(update);
+        scheduleFrame();
+    }
+
+    /**
+     * Drops any pending updates and ignores any posted from now on (for when the views
+     * are going away)
+     */
+    public void cancel() {
+        mCancelled = true;
+        mPending.clear();
+        if (mFrameScheduled) {
+            if (mChoreographerFrames != null) {
+                mChoreographerFrames.remove();
+            } else {
+                mHandler.removeCallbacks(mHandlerFrame);
+            }
+            mFrameScheduled = false;
+        }
+        mLastFrameNanos = 0;
+    }
+
+    /**
+     * @return Total number of frames dropped while there were updates to apply
+     */
+    public int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) {
+            return;
+        }
+        mFrameScheduled = true;
+
+        if (mChoreographerFrames != null) {
+            mChoreographerFrames.post();
+        } else {
+            mHandler.postDelayed(mHandlerFrame, mFrameIntervalNanos / (1000 * 1000));
+        }
+    }
+
+    private void doFrame(final long frameTimeNanos) {
+        mFrameScheduled = false;
+
+        // If more than one frame interval went by since the last one, frames were dropped
+        if (mLastFrameNanos != 0) {
+            final long skipped = ((frameTimeNanos - mLastFrameNanos) / mFrameIntervalNanos) - 1;
+            if (skipped > 0) {
+                mBurstDroppedFrames += skipped;
+                mDroppedFrames += skipped;
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+        ++mBurstFrames;
+
+        // Apply as much as fits in this frame (but always at least one update)
+        final long start = System.nanoTime();
+        while (!mPending.isEmpty()) {
+            mPending.poll().run();
+            ++mBurstUpdates;
+
+            if (System.nanoTime() - start >= FRAME_BUDGET_NANOS) {
+                break;
+            }
+        }
+
+        if (!mPending.isEmpty()) {
+            // Leftovers go in the next frame
+            scheduleFrame();
+        } else {
+            Log.d(LOG_TAG, String.format(
+                    "Applied %d updates over %d frames, %d dropped (%d dropped in total)",
+                    mBurstUpdates, mBurstFrames, mBurstDroppedFrames, mDroppedFrames));
+            mBurstUpdates = 0;
+            mBurstFrames = 0;
+            mBurstDroppedFrames = 0;
+            mLastFrameNanos = 0;
+        }
+    }
+
+    /*
+     * Kept separate so Choreographer is only touched on versions that have it
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerFrames implements Choreographer.FrameCallback {
+        private final FrameUpdateQueue mQueue;
+
+        ChoreographerFrames(final FrameUpdateQueue queue) {
+            mQueue = queue;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            mQueue.doFrame(frameTimeNanos);
+        }
+    }
+}
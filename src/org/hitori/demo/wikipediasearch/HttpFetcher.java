@@ -0,0 +1,276 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/**
+ * Performs GET requests for the API and images, sharing one client (and its
+ * connections) between them.
+ * 
+ * Requests to each host go through an {@link AdaptiveLimiter}, and throttled or
+ * failed requests are retried with a jittered exponential backoff, honoring any
+ * Retry-After the server sends.
+ * @author niya
+ *
+ */
+public final class HttpFetcher {
+    private static final String LOG_TAG = HttpFetcher.class.getSimpleName();
+
+    /*
+     * User-agent for our requests
+     */
+    public static final String USER_AGENT = "WikipediaImageSearch/0.1 (https://github.com/niyafox/wpimgsearch; nicole AT hitori DOT org)";
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+    // Retry settings
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    // If the server wants us to wait longer than this, just give up
+    private static final long MAX_RETRY_AFTER_MS = 30000;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    private static final HttpClient sClient = createClient();
+    private static final Random sRandom = new Random();
+
+    private HttpFetcher() {
+        // Static helpers only
+    }
+
+    /**
+     * Gets the client shared by all requests
+     * @return The HTTP client
+     */
+    public static HttpClient getClient() {
+        return sClient;
+    }
+
+    /**
+     * Fetches the content at a URL, retrying if the server is busy
+     * @param url URL to fetch
+     * @return The content or null if it couldn't be fetched
+     */
+    public static byte[] fetch(final String url) {
+        final String host;
+        try {
+            host = new HttpGet(url).getURI().getHost();
+        } catch (final IllegalArgumentException e) {
+            Log.e(LOG_TAG, String.format("Bad URL %s", url), e);
+            return null;
+        }
+        final AdaptiveLimiter limiter = AdaptiveLimiter.forHost(host);
+
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+                if (attempt > 0) {
+                    Log.d(LOG_TAG, String.format("Retrying %s (attempt %d)", url, attempt + 1));
+                }
+
+                // Prepare a request object
+                final HttpGet httpget = new HttpGet(url);
+                httpget.setHeader("User-Agent", USER_AGENT);
+
+                long retryAfter = -1;
+                final long started = limiter.acquire();
+
+                // Whatever happens, the limiter has to hear about it or the slot is lost
+                boolean released = false;
+                try {
+                    // Execute the request
+                    final HttpResponse response = sClient.execute(httpget);
+                    final long responded = SystemClock.elapsedRealtime();
+                    final int status = response.getStatusLine().getStatusCode();
+
+                    if (status >= 200 && status < 300) {
+                        final byte[] data = readEntity(response.getEntity());
+                        released = true;
+                        limiter.onSuccess(started, responded);
+                        return data;
+                    }
+
+                    // Nothing we want in the body, but it has to be read to free the connection
+                    readEntity(response.getEntity());
+
+                    if (status == HTTP_TOO_MANY_REQUESTS || status == HTTP_SERVICE_UNAVAILABLE) {
+                        retryAfter = parseRetryAfter(response.getFirstHeader("Retry-After"));
+
+                        // Holds off every request to the host, not just this one
+                        released = true;
+                        limiter.onThrottled(started, Math.min(retryAfter, MAX_RETRY_AFTER_MS));
+                        if (retryAfter > MAX_RETRY_AFTER_MS) {
+                            Log.w(LOG_TAG, String.format("Giving up on %s, asked to wait %dms",
+                                    url, retryAfter));
+                            return null;
+                        }
+                    } else if (status >= 500) {
+                        released = true;
+                        limiter.onFailed(started);
+                    } else {
+                        // Anything else isn't going to get better by asking again
+                        released = true;
+                        limiter.onFailed(started);
+                        Log.w(LOG_TAG, String.format("HTTP %d for %s", status, url));
+                        return null;
+                    }
+                } catch (final InterruptedIOException e) {
+                    // Connect and read timeouts - the host is slow, so back off
+                    released = true;
+                    limiter.onTimedOut(started);
+                    Log.w(LOG_TAG, String.format("Request for %s timed out", url), e);
+                } catch (final IOException e) {
+                    Log.w(LOG_TAG, String.format("Request for %s failed", url), e);
+                } catch (final RuntimeException e) {
+                    // Not something a retry will fix
+                    Log.e(LOG_TAG, String.format("Request for %s failed", url), e);
+                    return null;
+                } finally {
+                    if (!released) {
+                        limiter.onFailed(started);
+                    }
+                }
+
+                // Wait before trying again (unless there's no trying again)
+                if (attempt + 1 < MAX_ATTEMPTS) {
+                    Thread.sleep(Math.max(retryAfter, backoff(attempt)));
+                }
+            }
+        } catch (final InterruptedException e) {
+            // Cancelled - let whoever interrupted us know we noticed
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Log.e(LOG_TAG, String.format("Couldn't fetch %s after %d attempts", url, MAX_ATTEMPTS));
+        return null;
+    }
+
+    /**
+     * Opens a connection to a host ahead of time (DNS, TCP and TLS), leaving it in the
+     * client's pool for the next real request
+     * @param url Any URL on the host
+     * @return true if the connection was made
+     */
+    public static boolean preconnect(final String url) {
+        final HttpHead httphead = new HttpHead(url);
+        httphead.setHeader("User-Agent", USER_AGENT);
+        try {
+            final HttpResponse response = sClient.execute(httphead);
+
+            // Nothing to read for a HEAD, but make sure the connection goes back to the pool
+            readEntity(response.getEntity());
+            return true;
+        } catch (final IOException e) {
+            Log.w(LOG_TAG, String.format("Couldn't preconnect to %s", url), e);
+            return false;
+        } catch (final RuntimeException e) {
+            // Warming up is optional, so it mustn't take the app down with it
+            Log.e(LOG_TAG, String.format("Couldn't preconnect to %s", url), e);
+            return false;
+        }
+    }
+
+    /*
+     * Exponential backoff with "equal jitter": half the delay is fixed and the other
+     * half is random, so clients that failed together don't all retry together
+     */
+    private static long backoff(final int attempt) {
+        final long delay = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << attempt);
+        final long half = delay / 2;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * half);
+        }
+    }
+
+    /*
+     * Retry-After is either a number of seconds or an HTTP date
+     */
+    private static long parseRetryAfter(final Header header) {
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+
+        final String value = header.getValue().trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (final NumberFormatException e) {
+            // Not a number, so try it as a date
+        }
+
+        try {
+            return DateUtils.parseDate(value).getTime() - System.currentTimeMillis();
+        } catch (final DateParseException e) {
+            Log.w(LOG_TAG, String.format("Couldn't parse Retry-After: %s", value));
+        }
+        return -1;
+    }
+
+    private static byte[] readEntity(final HttpEntity entity) throws IOException {
+        // If the response does not enclose an entity, there is no need
+        // to worry about connection release
+        if (entity == null) {
+            return new byte[0];
+        }
+
+        final InputStream instream = entity.getContent();
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = instream.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+            return data.toByteArray();
+        } finally {
+            instream.close();
+        }
+    }
+
+    /*
+     * One thread-safe client, keeping enough connections open per host for the limiter
+     */
+    private static HttpClient createClient() {
+        final HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+        ConnManagerParams.setMaxTotalConnections(params, AdaptiveLimiter.MAX_LIMIT * 2);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+                AdaptiveLimiter.MAX_LIMIT));
+
+        final SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        return new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+}
@@ -7,71 +7,189 @@ import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.view.View;
-import android.widget.ImageView;
-import android.widget.TextView;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ImageDownloader extends
         AsyncTask<ImageDownloader.ViewDownloadRequest, ImageDownloader.ProgressData, Void> {
     private static final String LOG_TAG = ImageDownloader.class.getSimpleName();
 
+    /*
+     * Images are loaded on a shared pool so several downloads can be in flight at once.
+     * How many actually hit a host at the same time is up to its AdaptiveLimiter.
+     */
+    private static final ExecutorService sLoadExecutor = Executors
+            .newFixedThreadPool(AdaptiveLimiter.MAX_LIMIT);
+
+    /*
+     * Loads currently running, by page and size.  A load from a cancelled batch can keep
+     * going for a while, so the next batch waits for it rather than downloading (and
+     * writing) the same image again.
+     */
+    private static final ConcurrentHashMap<String, FutureTask<Bitmap>> sInFlight = new ConcurrentHashMap<String, FutureTask<Bitmap>>();
+
     private final Context mContext;
 
-    public ImageDownloader(final Context context) {
+    // Thumbnail size requested for this screen of results
+    private final int mThumbnailSize;
+
+    // Images are shown through this, rather than straight away
+    private final FrameUpdateQueue mUpdateQueue;
+
+    // Keep track of where the images came from for this screen
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private final AtomicInteger mDownloaded = new AtomicInteger();
+    private final AtomicInteger mCached = new AtomicInteger();
+    private final AtomicInteger mScaled = new AtomicInteger();
+
+    public ImageDownloader(final Context context, final int thumbnailSize,
+            final FrameUpdateQueue updateQueue) {
         // Save the context for stuff later
         mContext = context;
+        mThumbnailSize = thumbnailSize;
+        mUpdateQueue = updateQueue;
     }
 
     @Override
     protected Void doInBackground(ViewDownloadRequest... requests) {
+        // Opened here since looking up the cache directory touches the disk
+        final ThumbnailCache cache = new ThumbnailCache(mContext);
+
+        // Start loading everything, then report each image as it's ready
+        final CompletionService<ProgressData> loads = new ExecutorCompletionService<ProgressData>(
+                sLoadExecutor);
+        final List<Future<ProgressData>> futures = new ArrayList<Future<ProgressData>>(
+                requests.length);
         for (final ViewDownloadRequest request : requests) {
-            // Hash the name of the file (that we'll use caching)
-            final String filename = createCacheFilename(request.url);
-            final File file = (mContext.getExternalCacheDir() == null) ? null : new File(mContext.getExternalCacheDir(), filename);
-
-            // Image data
-            final Bitmap image;
-
-            // Do we have it already?
-            if (file != null && file.exists() && file.canRead() && file.isFile()) {
-                // Cached - just use this and go
-                image = BitmapFactory.decodeFile(file.getAbsolutePath());
-            } else {
-                // Download the image from the server
-                image = downloadImage(request.url);
-
-                // Write the data out to the file (based on:
-                // http://stackoverflow.com/questions/649154/save-bitmap-to-location)
-                if (file != null) {
-                    // Only try if there actually is a cache dir
-                    try {
-                        final FileOutputStream out = new FileOutputStream(file.getAbsolutePath());
-                        image.compress(Bitmap.CompressFormat.JPEG, 90, out);
-                        out.close();
-                    } catch (final Exception e) {
-                        Log.w(LOG_TAG, String.format("Could not cache %s", request.url), e);
+            futures.add(loads.submit(new Callable<ProgressData>() {
+                @Override
+                public ProgressData call() {
+                    final Bitmap image = loadImage(cache, request);
+                    return (image == null) ? null : new ProgressData(request, image);
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < requests.length; ++i) {
+                try {
+                    final ProgressData pd = loads.take().get();
+
+                    // Report progress
+                    if (pd != null) {
+                        publishProgress(pd);
                     }
+                } catch (final ExecutionException e) {
+                    Log.e(LOG_TAG, "Loading an image failed", e.getCause());
                 }
             }
+        } catch (final InterruptedException e) {
+            // Cancelled, so don't bother with the rest
+            for (final Future<ProgressData> future : futures) {
+                future.cancel(true);
+            }
+        } finally {
+            // Even a cancelled screen downloaded something
+            ThumbnailStats.recordScreen(mThumbnailSize, mBytesDownloaded.get(),
+                    mDownloaded.get(), mCached.get(), mScaled.get());
+        }
+        return null;
+    }
 
-            // Report progress
-            if (image != null) {
-                publishProgress(new ProgressData(request, image));
+    /*
+     * Loads an image, or waits for the same image if another batch is already loading it
+     */
+    private Bitmap loadImage(final ThumbnailCache cache, final ViewDownloadRequest request) {
+        final String key = loadKey(request.page, mThumbnailSize);
+        while (true) {
+            final FutureTask<Bitmap> load = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return loadImageNow(cache, request);
+                }
+            });
+
+            final FutureTask<Bitmap> existing = sInFlight.putIfAbsent(key, load);
+            if (existing == null) {
+                // Ours to load
+                try {
+                    load.run();
+                    return load.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (final ExecutionException e) {
+                    Log.e(LOG_TAG, "Loading an image failed", e.getCause());
+                    return null;
+                } finally {
+                    sInFlight.remove(key, load);
+                }
             }
+
+            try {
+                final Bitmap image = existing.get();
+                if (image != null) {
+                    return image;
+                }
+            } catch (final InterruptedException e) {
+                // This batch was cancelled
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (final ExecutionException e) {
+                // Handled by whoever ran it
+            }
+
+            // The other load gave up (maybe its batch was cancelled), so try again ourselves
+            sInFlight.remove(key, existing);
         }
+    }
 
-        return null;
+    private static String loadKey(final WikiPage page, final int size) {
+        return (page.pageId > 0) ? (page.pageId + "@" + size) : (page.thumbnailUrl + "@" + size);
+    }
+
+    /*
+     * Gets an image from the cache if possible, or otherwise from the server
+     */
+    private Bitmap loadImageNow(final ThumbnailCache cache, final ViewDownloadRequest request) {
+        // Do we have it already?
+        Bitmap image = cache.get(request.page, mThumbnailSize);
+        if (image != null) {
+            mCached.incrementAndGet();
+            return image;
+        }
+
+        // Maybe there's a bigger version we can scale down
+        image = cache.getScaled(request.page, mThumbnailSize);
+        if (image != null) {
+            mScaled.incrementAndGet();
+        } else {
+            // Download the image from the server
+            final byte[] data = HttpFetcher.fetch(request.url);
+            if (data != null) {
+                mBytesDownloaded.addAndGet(data.length);
+                mDownloaded.incrementAndGet();
+                image = BitmapFactory.decodeByteArray(data, 0, data.length);
+            }
+        }
+
+        // Save it at this size for next time
+        if (image != null) {
+            cache.put(request.page, mThumbnailSize, image);
+        }
+        return image;
     }
 
     @Override
@@ -79,27 +197,34 @@ public class ImageDownloader extends
         // I can't imagine why it wouldn't just publish one at a time but
         // *shrug*
         for (final ProgressData pd : progress) {
-            // This code is highly coupled and it would be better to do it,
-            // really, through a custom view
-            // or at least a callback or interface, but it's taking so much time
-            // I want to at least get it
-            // semi-working/demo-ish
-            final TextView textView = (TextView) pd.request.view.findViewById(R.id.page_tv);
-            final ImageView imgView = (ImageView) pd.request.view.findViewById(R.id.page_iv);
-
-            // First, set the image, make it visible, then remove the text
-            // placeholder
-            imgView.setImageBitmap(pd.image);
-            imgView.setVisibility(View.VISIBLE);
-            textView.setVisibility(View.GONE);
-
-            // Update the content description on the image while we're at it
-            final WikiPage page = (WikiPage) pd.request.view.getTag();
-            imgView.setContentDescription(mContext.getResources().getString(R.string.page_image,
-                    page.title));
+            // Loaded, so it won't need asking for again even if this task is cancelled
+            pd.request.holder.imageLoaded = true;
+
+            // Show it with the next frame's batch of updates
+            mUpdateQueue.post(new Runnable() {
+                @Override
+                public void run() {
+                    showImage(pd);
+                }
+            });
         }
     }
 
+    private void showImage(final ProgressData pd) {
+        // Updates are applied in order, so the view has already been added by now
+        final PageViewHolder holder = pd.request.holder;
+
+        // First, set the image, make it visible, then remove the text
+        // placeholder
+        holder.imageView.setImageBitmap(pd.image);
+        holder.imageView.setVisibility(View.VISIBLE);
+        holder.textView.setVisibility(View.GONE);
+
+        // Update the content description on the image while we're at it
+        holder.imageView.setContentDescription(mContext.getResources().getString(
+                R.string.page_image, holder.page.title));
+    }
+
     /**
      * Interface class for passing in download requests to the async tasks's
      * background thread
@@ -108,11 +233,13 @@ public class ImageDownloader extends
      */
     public static class ViewDownloadRequest {
         public final String url;
-        public final View view;
+        public final WikiPage page;
+        public final PageViewHolder holder;
 
-        public ViewDownloadRequest(final String url, final View view) {
-            this.url = url;
-            this.view = view;
+        public ViewDownloadRequest(final PageViewHolder holder) {
+            this.url = holder.page.thumbnailUrl;
+            this.page = holder.page;
+            this.holder = holder;
         }
     }
 
@@ -131,72 +258,4 @@ public class ImageDownloader extends
             this.image = image;
         }
     }
-
-    private Bitmap downloadImage(final String url) {
-        // Get the default client
-        HttpClient httpclient = new DefaultHttpClient();
-
-        // Prepare a request object
-        HttpGet httpget = new HttpGet(url);
-
-        // Execute the request
-        HttpResponse response;
-        try {
-            response = httpclient.execute(httpget);
-
-            // Get hold of the response entity
-            final HttpEntity entity = response.getEntity();
-            // If the response does not enclose an entity, there is no need
-            // to worry about connection release
-
-            if (entity != null) {
-
-                // Get an input stream for the content
-                final InputStream instream = entity.getContent();
-                final Bitmap image = BitmapFactory.decodeStream(instream);
-
-                // Either way the stream is done
-                instream.close();
-
-                // Send back the image
-                return image;
-            }
-        } catch (final Exception e) {
-            Log.e(LOG_TAG, "API call failed", e);
-        }
-
-        // If we get here, something broke, so there's no image
-        return null;
-    }
-
-    /*
-     * Helper method, based on
-     * http://stackoverflow.com/questions/4846484/md5-or-
-     * other-hashing-in-android
-     */
-    public static final String createCacheFilename(final String url) {
-        try {
-            // Create SHA hash
-            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(url.getBytes());
-            final byte messageDigest[] = digest.digest();
-
-            // Create Hex String
-            final StringBuilder hexString = new StringBuilder();
-            for (byte aMessageDigest : messageDigest) {
-                String h = Integer.toHexString(0xFF & aMessageDigest);
-                while (h.length() < 2) {
-                    h = "0" + h;
-                }
-                hexString.append(h);
-            }
-
-            // Whatever the format on the server, we'll cache them as JPEGs
-            return String.format("%s.jpg", hexString.toString());
-
-        } catch (final NoSuchAlgorithmException e) {
-            Log.w(LOG_TAG, "Couldn't find message digest algorithm", e);
-        }
-        return null;
-    }
 }
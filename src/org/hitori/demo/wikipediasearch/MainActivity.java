@@ -2,7 +2,9 @@
 package org.hitori.demo.wikipediasearch;
 
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.app.Activity;
 import android.content.Intent;
 import android.text.Editable;
@@ -12,7 +14,6 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.GridLayout;
-import android.widget.TextView;
 
 import org.hitori.demo.wikipediasearch.ImageDownloader.ViewDownloadRequest;
 
@@ -22,19 +23,49 @@ import java.util.List;
 public class MainActivity extends Activity implements SearchResultsListener {
     private static final String LOG_TAG = MainActivity.class.getSimpleName();
 
+    // Turn off to measure the first search without warming up
+    private static final boolean WARM_UP = true;
+
     private EditText mSearchTerm;
     private GridLayout mResultsGrid;
     private LayoutInflater mInflater;
 
+    // Pages the grid shows, once all the queued updates have been applied
+    private final List<PageViewHolder> mDisplayedPages = new ArrayList<PageViewHolder>();
+
+    // Changes to the grid and thumbnails are applied through here, a frame at a time
+    private FrameUpdateQueue mUpdateQueue;
+
     // Simplify the interface for managing search terms
     private SearchTermWatcher mSearchWatcher = new SearchTermWatcher();
 
     // Supply the ability to cache results
-    private CachableSearch mCacheableSearch = new CachableSearch();
+    private CachableSearch mCacheableSearch;
+
+    // Thumbnail size (in pixels) to request for this screen
+    private int mThumbnailSize;
+
+    // Loads the thumbnails for the results currently being shown
+    private ImageDownloader mImageDownloader;
+
+    // Connects and loads things in the background before the first search
+    private WarmupTask mWarmupTask;
+
+    // For measuring the time to the first result (mCreatedAt is cleared once reported)
+    private long mCreatedAt;
+    private long mFirstSearchAt;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAt = SystemClock.elapsedRealtime();
+
+        // Get the slow stuff going before anything else, without holding up the first frame
+        if (WARM_UP) {
+            mWarmupTask = new WarmupTask(this);
+            mWarmupTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
         setContentView(R.layout.activity_main);
 
         // Save a reference to the layout inflater for later
@@ -44,6 +75,40 @@ public class MainActivity extends Activity implements SearchResultsListener {
         mSearchTerm.addTextChangedListener(mSearchWatcher);
 
         mResultsGrid = (GridLayout) findViewById(R.id.results_gl);
+        mUpdateQueue = new FrameUpdateQueue(getWindowManager().getDefaultDisplay()
+                .getRefreshRate());
+
+        // Ask for thumbnails that match the size of a result on this screen
+        mThumbnailSize = ThumbnailSize.forCell(getResources());
+        mCacheableSearch = new CachableSearch(mThumbnailSize);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // No point warming up if the user has gone somewhere else
+        if (mWarmupTask != null) {
+            mWarmupTask.cancel(true);
+            mWarmupTask = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Stop loading images for views that are going away
+        if (mImageDownloader != null) {
+            mImageDownloader.cancel(true);
+            mImageDownloader = null;
+        }
+
+        // Don't touch the views after they're gone (including updates posted later by
+        // image loads that were already finishing)
+        mUpdateQueue.cancel();
+        Log.d(LOG_TAG, String.format("Dropped %d frames applying updates",
+                mUpdateQueue.getDroppedFrames()));
     }
 
     /**
@@ -51,32 +116,47 @@ public class MainActivity extends Activity implements SearchResultsListener {
      */
     @Override
     public void onSearchResults(String term, List<WikiPage> results) {
+        if (mCreatedAt != 0 && mFirstSearchAt != 0 && results != null) {
+            final long now = SystemClock.elapsedRealtime();
+            Log.i(LOG_TAG, String.format(
+                    "First results in %dms after the first search, %dms after launch (warm-up %s)",
+                    now - mFirstSearchAt, now - mCreatedAt, WARM_UP ? "on" : "off"));
+            mCreatedAt = 0;
+        }
+
         // Simplify some later code
         final int resultsCount = (results == null) ? 0 : results.size();
 
         // List of images (and associated views) to download
         final List<ViewDownloadRequest> downloads = new ArrayList<ViewDownloadRequest>();
 
+        /*
+         * The grid itself is updated a few views per frame, so it may still be catching
+         * up with the last results.  Work out the changes against what it *will* show
+         * once the queued updates are applied instead.
+         */
+        final List<PageViewHolder> displayed = mDisplayedPages;
+
         // Current indexes
         int currentResult = 0;
         int currentChild = 0;
 
         // Aliases for easily comparing pages in the results
         WikiPage curRes = (currentResult < resultsCount) ? results.get(currentResult) : null;
-        WikiPage curChild = (currentChild < mResultsGrid.getChildCount()) ? (WikiPage) mResultsGrid
-                .getChildAt(currentChild).getTag()
+        WikiPage curChild = (currentChild < displayed.size()) ? displayed.get(currentChild).page
                 : null;
 
         while (curRes != null || curChild != null) {
             if (curChild == null && curRes != null) {
                 // Add the result
-                final View view = viewFromPage(curRes);
-                mResultsGrid.addView(view);
+                final PageViewHolder holder = new PageViewHolder(curRes);
+                displayed.add(holder);
+                queueAddView(holder, currentChild);
                 Log.v(LOG_TAG, "Add page: " + curRes.title);
 
                 // Download to perform?
                 if (curRes.thumbnailUrl != null) {
-                    downloads.add(new ViewDownloadRequest(curRes.thumbnailUrl, view));
+                    downloads.add(new ViewDownloadRequest(holder));
                 }
 
                 // Next result and bump the child index
@@ -84,25 +164,24 @@ public class MainActivity extends Activity implements SearchResultsListener {
                 ++currentChild;
             } else if (curChild != null && curRes == null) {
                 // Remove the child, since it's no longer in the results
-                mResultsGrid.removeViewAt(currentChild);
+                displayed.remove(currentChild);
+                queueRemoveView(currentChild);
                 Log.v(LOG_TAG, "Remove child: " + curChild.title);
 
                 // No need to change the current child, since we deleted a
                 // view (so the current index is the same, but it now points
                 // to the previously "next" child
-            } else if (curChild == null && curRes == null) {
-                // Ran out of both lists! We're done!
-                Log.v(LOG_TAG, "Update complete!");
             } else {
                 if (curRes.title.compareTo(curChild.title) < 0) {
                     // Add the result
-                    final View view = viewFromPage(curRes);
-                    mResultsGrid.addView(view, currentChild);
+                    final PageViewHolder holder = new PageViewHolder(curRes);
+                    displayed.add(currentChild, holder);
+                    queueAddView(holder, currentChild);
                     Log.v(LOG_TAG, "Insert page: " + curRes.title);
 
                     // Download to perform?
                     if (curRes.thumbnailUrl != null) {
-                        downloads.add(new ViewDownloadRequest(curRes.thumbnailUrl, view));
+                        downloads.add(new ViewDownloadRequest(holder));
                     }
 
                     // Next result
@@ -110,42 +189,79 @@ public class MainActivity extends Activity implements SearchResultsListener {
 
                     // Also next child, because we just bumped it forward
                     ++currentChild;
-
-                    // Done (for this round)
-                    break;
                 } else if (curRes.title.compareTo(curChild.title) > 0) {
                     // Remove a child, since it doesn't belong in the
                     // results
-                    mResultsGrid.removeViewAt(currentChild);
+                    displayed.remove(currentChild);
+                    queueRemoveView(currentChild);
                     Log.v(LOG_TAG, "Remove child: " + curChild.title);
                 } else {
                     // The child is in the results, so it stays -- just continue
                     Log.v(LOG_TAG, "Skipping already included child: " + curChild.title);
+
+                    // Its image might have been loading in the batch we're about to cancel
+                    final PageViewHolder holder = displayed.get(currentChild);
+                    if (curChild.thumbnailUrl != null && !holder.imageLoaded) {
+                        downloads.add(new ViewDownloadRequest(holder));
+                    }
+
                     ++currentResult;
                     ++currentChild;
                 }
             }
 
             // Get the next pages to work with
-            curRes = (results != null && currentResult < results.size()) ? results
-                    .get(currentResult) : null;
-            curChild = (currentChild < mResultsGrid.getChildCount()) ? (WikiPage) mResultsGrid
-                    .getChildAt(currentChild).getTag()
+            curRes = (currentResult < resultsCount) ? results.get(currentResult) : null;
+            curChild = (currentChild < displayed.size()) ? displayed.get(currentChild).page
                     : null;
         }
+        Log.v(LOG_TAG, "Update complete!");
+
+        // Don't leave these images queued behind ones for pages that are gone (any
+        // kept pages that were still waiting for an image are part of this batch)
+        if (mImageDownloader != null) {
+            mImageDownloader.cancel(true);
+        }
 
-        // Start the download of images
-        new ImageDownloader(this).execute(downloads.toArray(new ViewDownloadRequest[downloads
-                .size()]));
+        // Start the download of images (off the serial executor, so a slow batch of
+        // images doesn't hold up the next search)
+        mImageDownloader = new ImageDownloader(this, mThumbnailSize, mUpdateQueue);
+        mImageDownloader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                downloads.toArray(new ViewDownloadRequest[downloads.size()]));
+    }
+
+    /*
+     * Queues adding the view for a page to the grid (the view is created then, too)
+     */
+    private void queueAddView(final PageViewHolder holder, final int index) {
+        mUpdateQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                mResultsGrid.addView(viewFromPage(holder), index);
+            }
+        });
+    }
+
+    /*
+     * Queues removing a view from the grid
+     */
+    private void queueRemoveView(final int index) {
+        mUpdateQueue.post(new Runnable() {
+            @Override
+            public void run() {
+                mResultsGrid.removeViewAt(index);
+            }
+        });
     }
 
     /*
      * Helper method to construct a view from a WikiPage
      */
-    private View viewFromPage(final WikiPage page) {
+    private View viewFromPage(final PageViewHolder holder) {
+        final WikiPage page = holder.page;
         final View view = mInflater.inflate(R.layout.page_image, null);
-        ((TextView) (view.findViewById(R.id.page_tv))).setText(page.title);
-        view.setTag(page);
+        holder.attach(view);
+        holder.textView.setText(page.title);
 
         final Uri uri = Uri.parse(page.fullurl);
         if (uri != null) {
@@ -167,6 +283,9 @@ public class MainActivity extends Activity implements SearchResultsListener {
      * Internal interface method from SearchTermWatcher
      */
     private void onNewSearchTerm(final String term) {
+        if (mFirstSearchAt == 0) {
+            mFirstSearchAt = SystemClock.elapsedRealtime();
+        }
         mCacheableSearch.performSearch(term, this);
     }
 
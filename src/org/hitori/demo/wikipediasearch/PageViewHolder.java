@@ -0,0 +1,40 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Holds on to the views for a single result, so they only have to be looked up once.
+ * 
+ * The holder is created as soon as a result is known, but the view itself isn't
+ * inflated until the grid update that adds it is applied, so the views are null
+ * until then.
+ * @author niya
+ *
+ */
+public class PageViewHolder {
+    public final WikiPage page;
+
+    public View view;
+    public ImageView imageView;
+    public TextView textView;
+
+    // Set (on the UI thread) once the image has been loaded and queued to be shown
+    public boolean imageLoaded;
+
+    public PageViewHolder(final WikiPage page) {
+        this.page = page;
+    }
+
+    /**
+     * Connects the holder to the view for its page
+     * @param view The inflated page_image layout
+     */
+    public void attach(final View view) {
+        this.view = view;
+        imageView = (ImageView) view.findViewById(R.id.page_iv);
+        textView = (TextView) view.findViewById(R.id.page_tv);
+        view.setTag(this);
+    }
+}
@@ -4,18 +4,9 @@ package org.hitori.demo.wikipediasearch;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -28,21 +19,22 @@ public class SearchTask extends AsyncTask<Void, Void, List<WikiPage>> {
     /*
      * URI to the Wikipedia API (with default arguments set)
      */
-    private static final String SEARCH_URI = "https://en.wikipedia.org/w/api.php?action=query&prop=pageimages%%7Cinfo&format=json&piprop=thumbnail&inprop=url&pilimit=50&generator=allpages&gaplimit=50&pithumbsize=96&gapprefix=%s";
+    private static final String SEARCH_URI = "https://en.wikipedia.org/w/api.php?action=query&prop=pageimages%%7Cinfo&format=json&piprop=thumbnail&inprop=url&pilimit=50&generator=allpages&gaplimit=50&pithumbsize=%d&gapprefix=%s";
     
     /*
-     * User-agent for our API requests
+     * Search string for this task
      */
-    private static final String USER_AGENT = "WikipediaImageSearch/0.1 (https://github.com/niyafox/wpimgsearch; nicole AT hitori DOT org)";
+    private final String mSearchTerm;
 
     /*
-     * Search string for this task
+     * Size of the thumbnails to ask for
      */
-    private final String mSearchTerm;
+    private final int mThumbnailSize;
 
     private final SearchResultsListener mListener;
 
-    public SearchTask(final SearchResultsListener listener, final String searchTerm) {
+    public SearchTask(final SearchResultsListener listener, final String searchTerm,
+            final int thumbnailSize) {
         String encodedTerm = null;
         try {
             encodedTerm = URLEncoder.encode(searchTerm, "UTF-8");
@@ -51,10 +43,11 @@ public class SearchTask extends AsyncTask<Void, Void, List<WikiPage>> {
         }
 
         mSearchTerm = encodedTerm;
+        mThumbnailSize = thumbnailSize;
         mListener = listener;
     }
     
-    protected List<WikiPage> parseResult(final String result) {
+    protected static List<WikiPage> parseResult(final String result) {
         try {
             final JSONObject obj = new JSONObject(result);
             if (obj.has("query")) {
@@ -72,7 +65,7 @@ public class SearchTask extends AsyncTask<Void, Void, List<WikiPage>> {
         return new ArrayList<WikiPage>(0);
     }
     
-    protected List<WikiPage> parsePages(final JSONObject pages) {
+    protected static List<WikiPage> parsePages(final JSONObject pages) {
         final List<WikiPage> pagesList = new ArrayList<WikiPage>();
         
         @SuppressWarnings("unchecked")
@@ -97,81 +90,26 @@ public class SearchTask extends AsyncTask<Void, Void, List<WikiPage>> {
         return pagesList;
     }
 
-    /*
-     * Code based on
-     * http://stackoverflow.com/questions/4457492/simple-http-client
-     * -example-in-android
-     */
-
     @Override
     protected List<WikiPage> doInBackground(Void... params) {
-        List<WikiPage> results = null;
-        
-        // Get the default client
-        HttpClient httpclient = new DefaultHttpClient();
-
-        // Prepare a request object
-        HttpGet httpget = new HttpGet(String.format(SEARCH_URI, mSearchTerm));
-        httpget.setHeader("User-Agent", USER_AGENT);
+        // Perform the request (retrying if the API is busy)
+        final byte[] data = HttpFetcher.fetch(String.format(SEARCH_URI, mThumbnailSize, mSearchTerm));
+        if (data == null) {
+            Log.e(LOG_TAG, "API call failed");
+            return null;
+        }
 
-        // Execute the request
-        HttpResponse response;
         try {
-            response = httpclient.execute(httpget);
-
-            // Get hold of the response entity
-            final HttpEntity entity = response.getEntity();
-            // If the response does not enclose an entity, there is no need
-            // to worry about connection release
-
-            if (entity != null) {
-
-                // A Simple JSON Response Read
-                final InputStream instream = entity.getContent();
-                final String result = convertStreamToString(instream);
-                results = parseResult(result);
-
-                // now you have the string representation of the HTML request
-                instream.close();
-            }
-        } catch (final Exception e) {
+            // Send the results back to the UI thread to be used
+            return parseResult(new String(data, "UTF-8"));
+        } catch (final UnsupportedEncodingException e) {
             Log.e(LOG_TAG, "API call failed", e);
             return null;
         }
-
-        // Send the results back to the UI thread to be used
-        return results;
     }
 
     @Override
     protected void onPostExecute(List<WikiPage> result) {
         mListener.onSearchResults(mSearchTerm, result);
     }
-
-    private static String convertStreamToString(InputStream is) {
-        /*
-         * To convert the InputStream to String we use the
-         * BufferedReader.readLine() method. We iterate until the BufferedReader
-         * return null which means there's no more data to read. Each line will
-         * appended to a StringBuilder and returned as String.
-         */
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        final StringBuilder sb = new StringBuilder();
-
-        String line = null;
-        try {
-            while ((line = reader.readLine()) != null) {
-                sb.append(line);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                is.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return sb.toString();
-    }
 }
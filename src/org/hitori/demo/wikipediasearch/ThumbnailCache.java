@@ -0,0 +1,448 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * File cache for thumbnails, keyed by the page and the size of the thumbnail.
+ * 
+ * If the size asked for isn't cached, but a larger size is, the larger image is
+ * scaled down rather than downloading the smaller one.
+ * 
+ * Files are named by a hash of the key and spread over 256 directories, so no one
+ * directory gets too big (a few hundred files each at 100k thumbnails).  An index of
+ * what's cached is built once, so lookups don't have to check the disk.
+ * @author niya
+ *
+ */
+public class ThumbnailCache {
+    private static final String LOG_TAG = ThumbnailCache.class.getSimpleName();
+
+    // Thumbnails go in this directory, inside the app's cache directory
+    private static final String THUMBNAIL_DIR = "thumbs";
+
+    // Whatever the format on the server, we'll cache them as JPEGs
+    private static final String EXTENSION = ".jpg";
+
+    // Images are written to these and then renamed
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // Number of bytes of the key hash used in file names
+    private static final int NAME_BYTES = 16;
+
+    // Length of the (hex SHA-256) names used before the cache was sharded
+    private static final int LEGACY_NAME_LENGTH = 64;
+
+    // Index of what's in the cache, shared by everyone and loaded once
+    private static ThumbnailIndex sIndex;
+
+    private static final ThreadLocal<KeyDeriver> sKeyDerivers = new ThreadLocal<KeyDeriver>() {
+        @Override
+        protected KeyDeriver initialValue() {
+            return new KeyDeriver();
+        }
+    };
+
+    // Directory the images are stored in (or null if there's nowhere to put them)
+    private final File mCacheDir;
+    private final String mCacheDirPath;
+
+    public ThumbnailCache(final Context context) {
+        final File root = context.getExternalCacheDir();
+        mCacheDir = (root == null) ? null : new File(root, THUMBNAIL_DIR);
+        mCacheDirPath = (mCacheDir == null) ? null : mCacheDir.getAbsolutePath();
+    }
+
+    /**
+     * Loads the index of cached thumbnails, if it hasn't been loaded already.  This
+     * lists the cache directories, so don't call it on the UI thread.
+     */
+    public void loadIndex() {
+        index();
+    }
+
+    /**
+     * Looks up a thumbnail at exactly the requested size
+     * @param page Page the thumbnail is for
+     * @param size Thumbnail size
+     * @return The image or null if it isn't cached
+     */
+    public Bitmap get(final WikiPage page, final int size) {
+        final ThumbnailIndex index = index();
+        if (index == null) {
+            return null;
+        }
+
+        final KeyDeriver key = sKeyDerivers.get();
+        if (!index.contains(key.derive(page, size))) {
+            return null;
+        }
+        return BitmapFactory.decodeFile(key.path(mCacheDirPath));
+    }
+
+    /**
+     * Looks for a larger cached thumbnail and scales it down to the requested size
+     * @param page Page the thumbnail is for
+     * @param size Thumbnail size
+     * @return The scaled image or null if no larger size is cached
+     */
+    public Bitmap getScaled(final WikiPage page, final int size) {
+        // Sizes only mean anything across URLs if we know what page they're for
+        final ThumbnailIndex index = index();
+        if (index == null || page.pageId <= 0) {
+            return null;
+        }
+
+        final KeyDeriver key = sKeyDerivers.get();
+        for (int largerSize = ThumbnailSize.nextLarger(size); largerSize != 0;
+                largerSize = ThumbnailSize.nextLarger(largerSize)) {
+            if (index.contains(key.derive(page, largerSize))) {
+                final Bitmap image = decodeScaled(key.path(mCacheDirPath), size);
+                if (image != null) {
+                    return image;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores a thumbnail in the cache
+     * @param page Page the thumbnail is for
+     * @param size Thumbnail size
+     * @param image The image to store
+     */
+    public void put(final WikiPage page, final int size, final Bitmap image) {
+        // Only try if there actually is a cache dir
+        final ThumbnailIndex index = index();
+        if (index == null) {
+            return;
+        }
+
+        final KeyDeriver key = sKeyDerivers.get();
+        final long hash = key.derive(page, size);
+        final File file = new File(key.path(mCacheDirPath));
+
+        // Write the data out to the file (based on:
+        // http://stackoverflow.com/questions/649154/save-bitmap-to-location)
+        try {
+            final File shard = file.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs()) {
+                Log.w(LOG_TAG, String.format("Could not create %s", shard));
+                return;
+            }
+
+            // Write to a temporary file first and move it into place, so nobody ever
+            // reads a half-written image (or has one truncated under them)
+            final File temp = new File(shard, file.getName() + "."
+                    + Thread.currentThread().getId() + TEMP_EXTENSION);
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                image.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                Log.w(LOG_TAG, String.format("Could not move %s into place", temp));
+                return;
+            }
+            index.add(hash);
+        } catch (final Exception e) {
+            Log.w(LOG_TAG, String.format("Could not cache %s", page.thumbnailUrl), e);
+        }
+    }
+
+    /*
+     * Gets the index, building it the first time.  Returns null (and tries again next
+     * time) if there's no cache directory right now, e.g. storage isn't mounted.
+     */
+    private ThumbnailIndex index() {
+        if (mCacheDir == null) {
+            return null;
+        }
+
+        synchronized (ThumbnailCache.class) {
+            if (sIndex == null) {
+                sIndex = buildIndex(mCacheDir);
+            }
+            return sIndex;
+        }
+    }
+
+    /*
+     * Lists everything in the shard directories, or returns null if the cache directory
+     * can't be created
+     */
+    private static ThumbnailIndex buildIndex(final File cacheDir) {
+        final long start = SystemClock.elapsedRealtime();
+
+        // First time with this layout, so clear out the old one (just this once)
+        if (!cacheDir.isDirectory()) {
+            deleteUnshardedFiles(cacheDir.getParentFile());
+            if (!cacheDir.mkdirs()) {
+                Log.w(LOG_TAG, String.format("Could not create %s", cacheDir));
+                return null;
+            }
+        }
+
+        final ThumbnailIndex index = new ThumbnailIndex();
+        final File[] shards = cacheDir.listFiles();
+        if (shards != null) {
+            for (final File shard : shards) {
+                final String[] names = shard.list();
+                if (names == null) {
+                    continue;
+                }
+                for (final String name : names) {
+                    if (isCacheFilename(name)) {
+                        index.add(parseHash(name));
+                    } else if (name.endsWith(TEMP_EXTENSION)) {
+                        // Left over from a write that never finished
+                        new File(shard, name).delete();
+                    }
+                }
+            }
+        }
+
+        Log.d(LOG_TAG, String.format("Indexed %d thumbnails in %dms", index.size(),
+                SystemClock.elapsedRealtime() - start));
+        return index;
+    }
+
+    /*
+     * Older versions put every image directly in the cache directory, named by the hex
+     * SHA-256 of the URL.  Nothing will look for those any more, so clear them out.
+     */
+    private static void deleteUnshardedFiles(final File dir) {
+        final File[] files = (dir == null) ? null : dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            final String name = file.getName();
+            if (file.isFile() && name.length() == (LEGACY_NAME_LENGTH + EXTENSION.length())
+                    && name.endsWith(EXTENSION) && isHex(name, 0, LEGACY_NAME_LENGTH)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isCacheFilename(final String name) {
+        return name.length() == (NAME_BYTES * 2) + EXTENSION.length() && name.endsWith(EXTENSION)
+                && isHex(name, 0, NAME_BYTES * 2);
+    }
+
+    private static boolean isHex(final String s, final int start, final int end) {
+        for (int i = start; i < end; ++i) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The index entry is the first 8 bytes of the hash, which are the first 16 hex digits
+     */
+    private static long parseHash(final String name) {
+        long hash = 0;
+        for (int i = 0; i < 16; ++i) {
+            hash = (hash << 4) | Character.digit(name.charAt(i), 16);
+        }
+        return hash;
+    }
+
+    /*
+     * Decodes an image so that its shortest side is (at least) what a thumbnail of the given
+     * size needs to cover its cell.  It's first sub-sampled by a power of two to save
+     * memory, and then scaled the rest of the way.
+     */
+    private static Bitmap decodeScaled(final String path, final int size) {
+        // Find out how big the image is first
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        final int shortest = Math.min(options.outWidth, options.outHeight);
+        if (shortest <= 0) {
+            return null;
+        }
+
+        final int target = ThumbnailSize.shortSide(size);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (shortest / (options.inSampleSize * 2) >= target) {
+            options.inSampleSize *= 2;
+        }
+
+        final Bitmap sampled = BitmapFactory.decodeFile(path, options);
+        if (sampled == null) {
+            return null;
+        }
+
+        final int sampledShortest = Math.min(sampled.getWidth(), sampled.getHeight());
+        if (sampledShortest <= target) {
+            return sampled;
+        }
+
+        final float scale = target / (float) sampledShortest;
+        final Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+                Math.max(1, Math.round(sampled.getWidth() * scale)),
+                Math.max(1, Math.round(sampled.getHeight() * scale)), true);
+        if (scaled != sampled) {
+            sampled.recycle();
+        }
+        return scaled;
+    }
+
+    /*
+     * Turns a (page, size) key into a hash and a file path, reusing the same digest and
+     * buffers each time, rather than creating a digest, a byte array from the URL and a
+     * StringBuilder per key.  (The digest itself may still copy its output internally,
+     * depending on the provider.)  Not thread safe, so each thread gets its own.
+     */
+    private static final class KeyDeriver {
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        // "/ab/abcd...89.jpg" after the cache directory - the shard comes from the first byte
+        private static final int PATH_LENGTH = 4 + (NAME_BYTES * 2) + EXTENSION.length();
+
+        private final MessageDigest mDigest;
+
+        // Page ID (8 bytes) followed by the size (4 bytes)
+        private final byte[] mInput = new byte[12];
+        private final byte[] mHash;
+
+        // UTF-8 of URL keys, grown as needed
+        private byte[] mUrlBytes = new byte[256];
+
+        // Cache directory followed by the path of the file, grown as needed
+        private char[] mPath = new char[128];
+
+        KeyDeriver() {
+            try {
+                mDigest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 isn't available", e);
+            }
+            mHash = new byte[mDigest.getDigestLength()];
+        }
+
+        /**
+         * Hashes the key for a thumbnail.  The full hash is kept for {@link #path(String)}.
+         * @param page Page the thumbnail is for
+         * @param size Thumbnail size
+         * @return The first 8 bytes of the hash
+         */
+        long derive(final WikiPage page, final int size) {
+            if (page.pageId > 0) {
+                putLong(page.pageId, 0);
+                putInt(size, 8);
+                mDigest.update(mInput, 0, 12);
+            } else {
+                // Without a page ID all we have to go on is the URL
+                mDigest.update(mUrlBytes, 0, encodeUtf8(page.thumbnailUrl));
+                putInt(size, 0);
+                mDigest.update(mInput, 0, 4);
+            }
+
+            try {
+                mDigest.digest(mHash, 0, mHash.length);
+            } catch (final DigestException e) {
+                throw new IllegalStateException("Couldn't hash key", e);
+            }
+
+            long hash = 0;
+            for (int i = 0; i < 8; ++i) {
+                hash = (hash << 8) | (mHash[i] & 0xFF);
+            }
+            return hash;
+        }
+
+        /**
+         * @param dir Absolute path of the cache directory
+         * @return Absolute path of the file for the last derived key
+         */
+        String path(final String dir) {
+            final int dirLength = dir.length();
+            if (mPath.length < dirLength + PATH_LENGTH) {
+                mPath = new char[dirLength + PATH_LENGTH];
+            }
+
+            dir.getChars(0, dirLength, mPath, 0);
+            mPath[dirLength] = File.separatorChar;
+            putHex(mHash[0], dirLength + 1);
+            mPath[dirLength + 3] = File.separatorChar;
+            for (int i = 0; i < NAME_BYTES; ++i) {
+                putHex(mHash[i], dirLength + 4 + (i * 2));
+            }
+            EXTENSION.getChars(0, EXTENSION.length(), mPath, dirLength + PATH_LENGTH
+                    - EXTENSION.length());
+            return new String(mPath, 0, dirLength + PATH_LENGTH);
+        }
+
+        /*
+         * Writes the UTF-8 for a string into mUrlBytes, returning the number of bytes
+         */
+        private int encodeUtf8(final String s) {
+            final int length = s.length();
+
+            // No character takes more than 3 bytes (surrogate pairs take 4 for 2)
+            if (mUrlBytes.length < length * 3) {
+                mUrlBytes = new byte[length * 3];
+            }
+
+            int n = 0;
+            for (int i = 0; i < length; ++i) {
+                final char c = s.charAt(i);
+                if (c < 0x80) {
+                    mUrlBytes[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    mUrlBytes[n++] = (byte) (0xC0 | (c >> 6));
+                    mUrlBytes[n++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    mUrlBytes[n++] = (byte) (0xF0 | (codePoint >> 18));
+                    mUrlBytes[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    mUrlBytes[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    mUrlBytes[n++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    mUrlBytes[n++] = (byte) (0xE0 | (c >> 12));
+                    mUrlBytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    mUrlBytes[n++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return n;
+        }
+
+        private void putLong(final long value, final int offset) {
+            for (int i = 0; i < 8; ++i) {
+                mInput[offset + i] = (byte) (value >>> (56 - (i * 8)));
+            }
+        }
+
+        private void putInt(final int value, final int offset) {
+            for (int i = 0; i < 4; ++i) {
+                mInput[offset + i] = (byte) (value >>> (24 - (i * 8)));
+            }
+        }
+
+        private void putHex(final byte b, final int offset) {
+            mPath[offset] = HEX_DIGITS[(b >> 4) & 0x0F];
+            mPath[offset + 1] = HEX_DIGITS[b & 0x0F];
+        }
+    }
+}
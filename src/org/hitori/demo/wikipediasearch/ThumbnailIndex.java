@@ -0,0 +1,87 @@
+package org.hitori.demo.wikipediasearch;
+
+/**
+ * Set of the thumbnails in the cache, so finding out whether something is cached
+ * doesn't have to touch the disk.
+ * 
+ * Entries are the first 64 bits of the key hash, kept in an open-addressing table
+ * with linear probing.  Zero marks an empty slot.
+ * @author niya
+ *
+ */
+public class ThumbnailIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] mTable = new long[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Checks whether a thumbnail is cached
+     * @param hash Key hash of the thumbnail
+     * @return true if it's in the index
+     */
+    public synchronized boolean contains(final long hash) {
+        final long entry = toEntry(hash);
+        final int mask = mTable.length - 1;
+        for (int slot = slotFor(entry, mask); mTable[slot] != 0; slot = (slot + 1) & mask) {
+            if (mTable[slot] == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a thumbnail to the index
+     * @param hash Key hash of the thumbnail
+     */
+    public synchronized void add(final long hash) {
+        // Keep the table at most half full so probe sequences stay short
+        if ((mSize + 1) * 2 > mTable.length) {
+            resize(mTable.length * 2);
+        }
+        if (insert(mTable, toEntry(hash))) {
+            ++mSize;
+        }
+    }
+
+    /**
+     * @return Number of thumbnails in the index
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void resize(final int capacity) {
+        final long[] table = new long[capacity];
+        for (final long entry : mTable) {
+            if (entry != 0) {
+                insert(table, entry);
+            }
+        }
+        mTable = table;
+    }
+
+    private static boolean insert(final long[] table, final long entry) {
+        final int mask = table.length - 1;
+        int slot = slotFor(entry, mask);
+        while (table[slot] != 0) {
+            if (table[slot] == entry) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = entry;
+        return true;
+    }
+
+    private static int slotFor(final long entry, final int mask) {
+        // The bits are from SHA-256, so they're already well mixed
+        return (int) (entry ^ (entry >>> 32)) & mask;
+    }
+
+    private static long toEntry(final long hash) {
+        // Zero means "empty", so move the (very unlikely) zero hash somewhere else
+        return (hash == 0) ? 1 : hash;
+    }
+}
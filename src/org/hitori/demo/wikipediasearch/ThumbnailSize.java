@@ -0,0 +1,79 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.content.res.Resources;
+
+/**
+ * Works out which thumbnail size to ask the API for, based on how big a result
+ * cell actually is on this screen
+ * @author niya
+ *
+ */
+public final class ThumbnailSize {
+    /*
+     * Sizes (in pixels) that we'll request.  Rounding up to one of a few sizes keeps the
+     * number of different thumbnails (both on the servers and in our cache) small, and
+     * lets a cached image be reused when the size needed changes.
+     */
+    private static final int[] BUCKETS = { 64, 96, 128, 192, 256, 384, 512 };
+
+    /*
+     * The API sizes thumbnails by their longest side, but cells are square and cropped,
+     * so it's the shortest side that has to cover the cell.  Ask for enough to cover
+     * images up to this aspect ratio (most photos are 4:3 or 3:2).
+     */
+    private static final float MAX_ASPECT_RATIO = 1.5f;
+
+    private ThumbnailSize() {
+        // Static helpers only
+    }
+
+    /**
+     * Finds the thumbnail size to request for a result cell on this device
+     * @param res Resources to read the cell dimensions from (already scaled for density)
+     * @return The smallest standard size whose short side covers the image area of a cell
+     */
+    public static int forCell(final Resources res) {
+        final int cellSize = res.getDimensionPixelSize(R.dimen.page_cell_size);
+        final int padding = res.getDimensionPixelSize(R.dimen.page_cell_padding);
+        return roundUp((int) Math.ceil((cellSize - (2 * padding)) * MAX_ASPECT_RATIO));
+    }
+
+    /**
+     * Works out how long the short side of a thumbnail needs to be for a size, i.e. the
+     * image area of the cell that size was chosen for
+     * @param size A standard size
+     * @return Length of the short side, in pixels
+     */
+    public static int shortSide(final int size) {
+        return (int) Math.ceil(size / MAX_ASPECT_RATIO);
+    }
+
+    /**
+     * Rounds a size in pixels up to the nearest standard size
+     * @param pixels The size needed
+     * @return The standard size to use (the largest one if nothing is big enough)
+     */
+    public static int roundUp(final int pixels) {
+        for (final int bucket : BUCKETS) {
+            if (bucket >= pixels) {
+                return bucket;
+            }
+        }
+        return BUCKETS[BUCKETS.length - 1];
+    }
+
+    /**
+     * Finds the next standard size up, for walking through the sizes that could be
+     * scaled down to a given one
+     * @param size A standard size
+     * @return The next larger standard size, or 0 if there isn't one
+     */
+    public static int nextLarger(final int size) {
+        for (final int bucket : BUCKETS) {
+            if (bucket > size) {
+                return bucket;
+            }
+        }
+        return 0;
+    }
+}
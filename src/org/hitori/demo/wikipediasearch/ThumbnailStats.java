@@ -0,0 +1,54 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Keeps track of how many bytes of thumbnails we download for each screen of results,
+ * separately for each thumbnail size
+ * @author niya
+ *
+ */
+public final class ThumbnailStats {
+    private static final String LOG_TAG = ThumbnailStats.class.getSimpleName();
+
+    // Totals, per thumbnail size
+    private static final SparseArray<Totals> sTotals = new SparseArray<Totals>();
+
+    private ThumbnailStats() {
+        // Static helpers only
+    }
+
+    /**
+     * Records the work done to show one screen of results
+     * @param size Thumbnail size that was requested for the screen
+     * @param bytes Number of bytes downloaded
+     * @param downloaded Number of images downloaded
+     * @param cached Number of images found in the cache at the requested size
+     * @param scaled Number of images scaled down from a larger cached size
+     */
+    public static synchronized void recordScreen(final int size, final long bytes,
+            final int downloaded, final int cached, final int scaled) {
+        Totals totals = sTotals.get(size);
+        if (totals == null) {
+            totals = new Totals();
+            sTotals.put(size, totals);
+        }
+
+        ++totals.screens;
+        totals.bytes += bytes;
+
+        Log.d(LOG_TAG, String.format(
+                "%dpx: %d bytes for this screen (%d downloaded, %d cached, %d scaled), "
+                        + "%d bytes/screen over %d screens", size, bytes, downloaded, cached,
+                scaled, totals.bytes / totals.screens, totals.screens));
+    }
+
+    /*
+     * Running totals for a single thumbnail size
+     */
+    private static class Totals {
+        int screens;
+        long bytes;
+    }
+}
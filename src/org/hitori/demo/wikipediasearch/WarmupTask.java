@@ -0,0 +1,112 @@
+package org.hitori.demo.wikipediasearch;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * Does the one-time work that would otherwise land on the first search, while the
+ * user is still getting ready to type: connecting to the servers, loading the cache
+ * index and loading/JITing the parsing and decoding code.
+ * 
+ * Run it on {@link AsyncTask#THREAD_POOL_EXECUTOR} so it doesn't hold up searches.
+ * @author niya
+ *
+ */
+public class WarmupTask extends AsyncTask<Void, Void, Void> {
+    private static final String LOG_TAG = WarmupTask.class.getSimpleName();
+
+    /*
+     * Hosts that the first search will talk to
+     */
+    private static final String API_URI = "https://en.wikipedia.org/w/api.php";
+    private static final String UPLOAD_URI = "https://upload.wikimedia.org/";
+
+    private final Context mContext;
+
+    public WarmupTask(final Context context) {
+        // Only hang on to the application, not an activity
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    protected Void doInBackground(final Void... params) {
+        final long start = SystemClock.elapsedRealtime();
+
+        // The search needs the API first, so connect there before anything else
+        HttpFetcher.preconnect(API_URI);
+        if (isCancelled()) {
+            return null;
+        }
+
+        // The thumbnail cache (there's nothing to load for the search cache, it's only
+        // kept in memory)
+        new ThumbnailCache(mContext).loadIndex();
+        if (isCancelled()) {
+            return null;
+        }
+
+        // Run a bundled response and thumbnail through the same parsing and (JPEG)
+        // decoding code that real results use
+        final byte[] sample = readRaw(R.raw.warmup_search);
+        List<WikiPage> pages = null;
+        if (sample != null) {
+            try {
+                pages = SearchTask.parseResult(new String(sample, "UTF-8"));
+            } catch (final UnsupportedEncodingException e) {
+                Log.w(LOG_TAG, "Couldn't read the sample results", e);
+            }
+        }
+
+        final byte[] thumbnail = readRaw(R.raw.warmup_thumbnail);
+        if (thumbnail != null) {
+            final Bitmap image = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+            if (image != null) {
+                image.recycle();
+            }
+        }
+        if (isCancelled()) {
+            return null;
+        }
+
+        HttpFetcher.preconnect(UPLOAD_URI);
+
+        Log.d(LOG_TAG, String.format("Warm-up done in %dms (parsed %d sample pages)",
+                SystemClock.elapsedRealtime() - start, (pages == null) ? 0 : pages.size()));
+        return null;
+    }
+
+    /*
+     * Reads a whole raw resource, or returns null if it can't be read
+     */
+    private byte[] readRaw(final int id) {
+        final InputStream instream = mContext.getResources().openRawResource(id);
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = instream.read(buffer)) != -1) {
+                data.write(buffer, 0, read);
+            }
+            return data.toByteArray();
+        } catch (final IOException e) {
+            Log.w(LOG_TAG, "Couldn't read warm-up sample", e);
+            return null;
+        } finally {
+            try {
+                instream.close();
+            } catch (final IOException e) {
+                // Nothing else to do with it
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ public class WikiPage {
      */
     public static WikiPage fromJson(final JSONObject json) {
         try {
+            final long pageId = json.has("pageid") ? json.getLong("pageid") : 0;
             final String title = json.has("title") ? json.getString("title") : "";
             final String fullurl = json.has("fullurl") ? json.getString("fullurl") : null;
             String thumbnailUrl = null;
@@ -43,7 +44,7 @@ public class WikiPage {
                 thumbnailUrl = (thumbnailObj != null && thumbnailObj.has("source")) ? thumbnailObj
                         .getString("source") : null;
             }
-            return new WikiPage(0, title, fullurl, thumbnailUrl);
+            return new WikiPage(pageId, title, fullurl, thumbnailUrl);
         } catch (final JSONException e) {
             Log.e(LOG_TAG, "JSON Parse Exception", e);
         }